@@ -25,12 +25,15 @@ package org.exoplatform.services.organization.idm;
 
 import org.exoplatform.commons.utils.ListAccess;
 import org.exoplatform.commons.utils.PageList;
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.management.annotations.Impact;
 import org.exoplatform.management.annotations.ImpactType;
 import org.exoplatform.management.annotations.Managed;
 import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
 import org.exoplatform.management.jmx.annotations.NameTemplate;
 import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.database.HibernateService;
 import org.exoplatform.services.organization.OrganizationService;
 import org.exoplatform.services.organization.Query;
 import org.exoplatform.services.organization.User;
@@ -38,9 +41,30 @@ import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
 import org.gatein.jcr.jta.JCRTransactionTest;
 import org.gatein.jcr.jta.JTAHelper;
+import org.gatein.jcr.jta.Job;
+import org.gatein.jcr.jta.JobProgress;
+import org.gatein.jcr.jta.JobService;
 import org.gatein.jcr.jta.SimpleObject;
+import org.hibernate.cfg.Settings;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.jdbc.BatcherFactory;
+import org.hibernate.jdbc.BatchingBatcherFactory;
 import org.picocontainer.Startable;
 
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 /**
  * Test of Picketlink cache in JTA environment
  *
@@ -55,14 +79,22 @@ import org.picocontainer.Startable;
 public class PicketlinkCacheTransactionTest implements Startable
 {
 
+   // Number of users created by each approach before measured rounds of testImportComparison
+   private static final int COMPARISON_WARMUP_USERS = 100;
+
    private static final Logger log = LoggerFactory.getLogger(JCRTransactionTest.class);
    private PicketLinkIDMOrganizationServiceImpl orgService;
    private PicketLinkIDMServiceImpl plIdmService;
+   private JobService jobService;
+
+   // Bulk imports change JDBC batching of Hibernate and detach integration cache, so only one of them can run at a time
+   private final Object importLock = new Object();
 
-   public PicketlinkCacheTransactionTest(OrganizationService orgService, PicketLinkIDMService plIdmService)
+   public PicketlinkCacheTransactionTest(OrganizationService orgService, PicketLinkIDMService plIdmService, JobService jobService)
    {
       this.orgService = (PicketLinkIDMOrganizationServiceImpl)orgService;
       this.plIdmService = (PicketLinkIDMServiceImpl)plIdmService;
+      this.jobService = jobService;
    }
 
 
@@ -130,6 +162,481 @@ public class PicketlinkCacheTransactionTest implements Startable
    }
 
 
+   @Managed
+   @ManagedDescription("Import users from CSV file with lines 'username,password,firstName,lastName,email'. Users are created " +
+         "in chunks, each chunk in one JTA transaction with Hibernate JDBC batching and with integration cache invalidated once " +
+         "per chunk. Imports are serialized. See server log once you execute this operation.")
+   @Impact(ImpactType.WRITE)
+   public String importUsers(@ManagedDescription("Path to CSV file") @ManagedName("csvPath") String csvPath,
+                             @ManagedDescription("Number of users created in one transaction") @ManagedName("chunkSize") int chunkSize,
+                             @ManagedDescription("JDBC batch size used by Hibernate during import. 0 keeps configured batch size")
+                             @ManagedName("jdbcBatchSize") int jdbcBatchSize,
+                             @ManagedDescription("If false, user event listeners are not notified") @ManagedName("broadcast") boolean broadcast) throws Exception
+   {
+      return importUsers(csvPath, chunkSize, jdbcBatchSize, broadcast, new JobProgress());
+   }
+
+   @Managed
+   @ManagedDescription("Asynchronous variant of importUsers. Returns id of job, which can be watched in JobService.")
+   @Impact(ImpactType.WRITE)
+   public int startImportUsers(@ManagedDescription("Path to CSV file") @ManagedName("csvPath") final String csvPath,
+                               @ManagedDescription("Number of users created in one transaction") @ManagedName("chunkSize") final int chunkSize,
+                               @ManagedDescription("JDBC batch size used by Hibernate during import. 0 keeps configured batch size")
+                               @ManagedName("jdbcBatchSize") final int jdbcBatchSize,
+                               @ManagedDescription("If false, user event listeners are not notified") @ManagedName("broadcast") final boolean broadcast)
+   {
+      return jobService.submit("importUsers", new Job()
+      {
+         public String run(JobProgress progress) throws Exception
+         {
+            return importUsers(csvPath, chunkSize, jdbcBatchSize, broadcast, progress);
+         }
+      });
+   }
+
+   @Managed
+   @ManagedDescription("Compare throughput of creating users one by one, each in its own transaction, with bulk import in chunks " +
+         "with JDBC batching and deferred cache invalidation. Created users are removed at the end. See server log once you execute this operation.")
+   @Impact(ImpactType.WRITE)
+   public String testImportComparison(@ManagedDescription("Number of users created by each approach") @ManagedName("userCount") int userCount,
+                                      @ManagedDescription("Number of users created in one transaction") @ManagedName("chunkSize") int chunkSize,
+                                      @ManagedDescription("JDBC batch size used by Hibernate during bulk import. 0 keeps configured batch size")
+                                      @ManagedName("jdbcBatchSize") int jdbcBatchSize) throws Exception
+   {
+      validateChunkSize(chunkSize);
+      log.info("Starting the import comparison test. userCount=" + userCount + ", chunkSize=" + chunkSize + ", jdbcBatchSize=" + jdbcBatchSize);
+      String prefix = "imp" + System.currentTimeMillis() + "_";
+
+      // Warm up both approaches, so that the first measured one doesn't pay for cold caches and JIT compilation
+      int warmupCount = Math.min(userCount, COMPARISON_WARMUP_USERS);
+      bulkImport(generateUsers(prefix + "w1_", warmupCount), 1, 0, false, true, new JobProgress());
+      bulkImport(generateUsers(prefix + "w2_", warmupCount), chunkSize, jdbcBatchSize, true, true, new JobProgress());
+      removeUsers(prefix + "w1_", warmupCount, chunkSize);
+      removeUsers(prefix + "w2_", warmupCount, chunkSize);
+
+      // Two rounds with swapped order of approaches
+      StringBuilder report = new StringBuilder();
+      for (int round = 0; round < 2; round++)
+      {
+         for (int i = 0; i < 2; i++)
+         {
+            boolean perUser = (round + i) % 2 == 0;
+            String usersPrefix = prefix + "r" + round + (perUser ? "p_" : "c_");
+            String result = perUser
+                  ? bulkImport(generateUsers(usersPrefix, userCount), 1, 0, false, true, new JobProgress())
+                  : bulkImport(generateUsers(usersPrefix, userCount), chunkSize, jdbcBatchSize, true, true, new JobProgress());
+            String line = "round " + (round + 1) + ", " + (perUser ? "per-user: " : "bulk(" + chunkSize + "): ") + result;
+            log.info(line);
+            report.append(line).append("\n");
+            removeUsers(usersPrefix, userCount, chunkSize);
+         }
+      }
+      return report.toString();
+   }
+
+   private String importUsers(String csvPath, int chunkSize, int jdbcBatchSize, boolean broadcast, JobProgress progress) throws Exception
+   {
+      log.info("Starting import of users from " + csvPath + ". chunkSize=" + chunkSize + ", jdbcBatchSize=" + jdbcBatchSize +
+            ", broadcast=" + broadcast);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvPath), "UTF-8"));
+      try
+      {
+         String result = bulkImport(new CsvUserIterator(reader), chunkSize, jdbcBatchSize, true, broadcast, progress);
+         log.info("Import of users from " + csvPath + " finished: " + result);
+         return result;
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+
+   /**
+    * Import users in chunks. If jdbcBatchSize is positive, Hibernate JDBC batching is switched on for the duration of import.
+    * If deferInvalidation is true, integration cache is invalidated once per chunk instead of once per user.
+    * Imports are serialized, as both of these change state shared by the whole portal container.
+    */
+   private String bulkImport(Iterator<User> users, int chunkSize, int jdbcBatchSize, boolean deferInvalidation, boolean broadcast,
+                             JobProgress progress) throws Exception
+   {
+      validateChunkSize(chunkSize);
+      synchronized (importLock)
+      {
+         JdbcBatching batching = new JdbcBatching(getIdmSessionFactory(), jdbcBatchSize);
+         try
+         {
+            long start = System.nanoTime();
+            int[] counts = new int[3];
+            List<User> chunk = new ArrayList<User>(chunkSize);
+            while (users.hasNext())
+            {
+               chunk.add(users.next());
+               if (chunk.size() >= chunkSize)
+               {
+                  importChunk(chunk, deferInvalidation, broadcast, counts, progress);
+                  chunk.clear();
+               }
+            }
+            if (!chunk.isEmpty())
+            {
+               importChunk(chunk, deferInvalidation, broadcast, counts, progress);
+            }
+
+            double seconds = (System.nanoTime() - start) / 1000000000d;
+            return "imported=" + counts[0] +
+                  ", failed=" + counts[1] +
+                  ", throughput=" + String.format("%.1f users/s", counts[0] / seconds) +
+                  ", elapsed=" + String.format("%.2f s", seconds) +
+                  ", cacheInvalidations=" + counts[2] +
+                  ", " + batching;
+         }
+         finally
+         {
+            batching.restore();
+         }
+      }
+   }
+
+   /**
+    * Create all users of chunk in one JTA transaction. Whole chunk is rolled back if any user fails.
+    * IDM lookups done by createUser flush Hibernate session, so one JDBC batch contains statements of one user
+    * (like its attributes), but not statements of different users.
+    *
+    * @param counts array with number of imported users at index 0, number of failed users at index 1 and number
+    * of integration cache invalidations at index 2
+    */
+   private void importChunk(List<User> chunk, boolean deferInvalidation, boolean broadcast, int[] counts, JobProgress progress) throws Exception
+   {
+      progress.checkCancelled();
+      long start = System.nanoTime();
+      UserTransaction tx = JTAHelper.getUserTransaction();
+      tx.begin();
+      IntegrationCache detachedCache = deferInvalidation ? detachIntegrationCache() : null;
+      try
+      {
+         for (User user : chunk)
+         {
+            orgService.getUserHandler().createUser(user, broadcast);
+         }
+         tx.commit();
+         counts[0] += chunk.size();
+      }
+      catch (Exception e)
+      {
+         counts[1] += chunk.size();
+         log.warn("Import of chunk starting with user " + chunk.get(0).getUserName() + " failed", e);
+         if (tx.getStatus() != Status.STATUS_NO_TRANSACTION)
+         {
+            tx.rollback();
+         }
+      }
+      finally
+      {
+         if (detachedCache != null)
+         {
+            attachIntegrationCache(detachedCache);
+            detachedCache.invalidateAll();
+            counts[2]++;
+         }
+         else if (plIdmService.getIntegrationCache() != null)
+         {
+            counts[2] += chunk.size();
+         }
+      }
+
+      progress.recordOperation(System.nanoTime() - start);
+      progress.setStatus("imported " + counts[0] + " users, failed " + counts[1]);
+   }
+
+   /**
+    * Detach integration cache from IDM service, so that createUser doesn't invalidate it. Other threads don't use the cache
+    * while it's detached either. Their changes committed in the meantime are covered by invalidation done once cache is
+    * attached back.
+    *
+    * @return detached cache or null if there is no cache or if it can't be detached
+    */
+   private IntegrationCache detachIntegrationCache()
+   {
+      IntegrationCache cache = plIdmService.getIntegrationCache();
+      if (cache == null)
+      {
+         return null;
+      }
+      try
+      {
+         setIntegrationCache(null);
+         return cache;
+      }
+      catch (Exception e)
+      {
+         log.warn("Can't detach integration cache. It will be invalidated for each created user", e);
+         return null;
+      }
+   }
+
+   private void attachIntegrationCache(IntegrationCache cache)
+   {
+      try
+      {
+         setIntegrationCache(cache);
+      }
+      catch (Exception e)
+      {
+         log.error("Can't attach integration cache back to IDM service", e);
+      }
+   }
+
+   // IDM service has no setter for integration cache. DAOs of IDM organization service skip invalidation if it's null
+   private void setIntegrationCache(IntegrationCache cache) throws Exception
+   {
+      Field field = PicketLinkIDMServiceImpl.class.getDeclaredField("integrationCache");
+      field.setAccessible(true);
+      field.set(plIdmService, cache);
+   }
+
+   /**
+    * Remove users created by testImportComparison. Users, which don't exist (for example from chunk, which failed), are skipped
+    */
+   private void removeUsers(String prefix, int userCount, int chunkSize) throws Exception
+   {
+      validateChunkSize(chunkSize);
+      UserTransaction tx = JTAHelper.getUserTransaction();
+      for (int i = 0; i < userCount; i += chunkSize)
+      {
+         tx.begin();
+         try
+         {
+            for (int j = i; j < Math.min(i + chunkSize, userCount); j++)
+            {
+               if (orgService.getUserHandler().findUserByName(prefix + j) != null)
+               {
+                  orgService.getUserHandler().removeUser(prefix + j, false);
+               }
+            }
+            tx.commit();
+         }
+         catch (Exception e)
+         {
+            log.warn("Removal of users " + prefix + i + " - " + prefix + Math.min(i + chunkSize, userCount) + " failed", e);
+            if (tx.getStatus() != Status.STATUS_NO_TRANSACTION)
+            {
+               tx.rollback();
+            }
+         }
+      }
+   }
+
+   private static void validateChunkSize(int chunkSize)
+   {
+      if (chunkSize < 1)
+      {
+         throw new IllegalArgumentException("Chunk size must be at least 1, but was " + chunkSize);
+      }
+   }
+
+   /**
+    * @return Hibernate session factory used by IDM or null if IDM doesn't use HibernateService
+    */
+   private SessionFactoryImplementor getIdmSessionFactory()
+   {
+      HibernateService hibernateService = (HibernateService)ExoContainerContext.getCurrentContainer()
+            .getComponentInstanceOfType(HibernateService.class);
+      if (hibernateService == null || !(hibernateService.getSessionFactory() instanceof SessionFactoryImplementor))
+      {
+         return null;
+      }
+      return (SessionFactoryImplementor)hibernateService.getSessionFactory();
+   }
+
+   private Iterator<User> generateUsers(final String prefix, final int userCount)
+   {
+      return new Iterator<User>()
+      {
+         private int next;
+
+         public boolean hasNext()
+         {
+            return next < userCount;
+         }
+
+         public User next()
+         {
+            if (!hasNext())
+            {
+               throw new NoSuchElementException();
+            }
+            return createUserObject(prefix + next++, "password", "johny", "Kikako", "johny@seznam.cz");
+         }
+
+         public void remove()
+         {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   private static User createUserObject(String username, String password, String firstName, String lastName, String email)
+   {
+      User user = new UserImpl(username);
+      user.setPassword(password);
+      user.setFirstName(firstName);
+      user.setLastName(lastName);
+      user.setEmail(email);
+      return user;
+   }
+
+   /**
+    * Hibernate reads JDBC batch size and ordering of inserts from settings of session factory, which can't be configured
+    * once the factory is built. Settings of factory used by IDM are therefore changed by reflection for the duration of
+    * import and restored afterwards. Change applies to all sessions opened in the meantime.
+    */
+   private static class JdbcBatching
+   {
+      private final Settings settings;
+      private int previousBatchSize;
+      private BatcherFactory previousBatcherFactory;
+      private boolean previousOrderInserts;
+      private boolean changed;
+      private String failure;
+
+      private JdbcBatching(SessionFactoryImplementor sessionFactory, int batchSize)
+      {
+         settings = sessionFactory != null ? sessionFactory.getSettings() : null;
+         if (settings == null || batchSize <= 0)
+         {
+            return;
+         }
+
+         previousBatchSize = settings.getJdbcBatchSize();
+         previousBatcherFactory = settings.getBatcherFactory();
+         previousOrderInserts = settings.isOrderInsertsEnabled();
+         try
+         {
+            changed = true;
+            set(batchSize, new BatchingBatcherFactory(), true);
+         }
+         catch (Exception e)
+         {
+            log.warn("Failed to enable JDBC batching of Hibernate", e);
+            failure = e.toString();
+            restore();
+         }
+      }
+
+      private void restore()
+      {
+         if (!changed)
+         {
+            return;
+         }
+         try
+         {
+            set(previousBatchSize, previousBatcherFactory, previousOrderInserts);
+            changed = false;
+         }
+         catch (Exception e)
+         {
+            log.error("Failed to restore JDBC batching settings of Hibernate", e);
+         }
+      }
+
+      private void set(int batchSize, BatcherFactory batcherFactory, boolean orderInserts) throws Exception
+      {
+         invokeSetter("setJdbcBatchSize", int.class, batchSize);
+         invokeSetter("setBatcherFactory", BatcherFactory.class, batcherFactory);
+         invokeSetter("setOrderInsertsEnabled", boolean.class, orderInserts);
+      }
+
+      private void invokeSetter(String name, Class<?> type, Object value) throws Exception
+      {
+         Method setter = Settings.class.getDeclaredMethod(name, type);
+         setter.setAccessible(true);
+         setter.invoke(settings, value);
+      }
+
+      @Override
+      public String toString()
+      {
+         if (settings == null)
+         {
+            return "hibernate.jdbc.batch_size=unknown (IDM doesn't use HibernateService)";
+         }
+
+         StringBuilder result = new StringBuilder("hibernate.jdbc.batch_size=").append(settings.getJdbcBatchSize())
+               .append(", hibernate.order_inserts=").append(settings.isOrderInsertsEnabled());
+         if (failure != null)
+         {
+            result.append(" (enabling of batching failed: ").append(failure).append(")");
+         }
+         if (settings.getJdbcBatchSize() > 0 && settings.getDialect().getNativeIdentifierGeneratorClass() == IdentityGenerator.class)
+         {
+            result.append(" (inserts of entities with native ids are not batched, as dialect uses identity columns)");
+         }
+         return result.toString();
+      }
+   }
+
+   /**
+    * Reads users from CSV lazily, line by line. Empty lines and lines starting with '#' are skipped.
+    */
+   private static class CsvUserIterator implements Iterator<User>
+   {
+      private final BufferedReader reader;
+      private String nextLine;
+      private int lineNumber;
+
+      private CsvUserIterator(BufferedReader reader) throws IOException
+      {
+         this.reader = reader;
+         readNextLine();
+      }
+
+      public boolean hasNext()
+      {
+         return nextLine != null;
+      }
+
+      public User next()
+      {
+         if (nextLine == null)
+         {
+            throw new NoSuchElementException();
+         }
+
+         String[] fields = nextLine.split(",", -1);
+         if (fields.length != 5)
+         {
+            throw new IllegalArgumentException("Line " + lineNumber + " doesn't have 5 fields: " + nextLine);
+         }
+         User user = createUserObject(fields[0].trim(), fields[1].trim(), fields[2].trim(), fields[3].trim(), fields[4].trim());
+
+         try
+         {
+            readNextLine();
+         }
+         catch (IOException e)
+         {
+            throw new IllegalStateException("Failed to read line " + (lineNumber + 1), e);
+         }
+         return user;
+      }
+
+      public void remove()
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      private void readNextLine() throws IOException
+      {
+         do
+         {
+            nextLine = reader.readLine();
+            lineNumber++;
+         }
+         while (nextLine != null && (nextLine.trim().length() == 0 || nextLine.startsWith("#")));
+      }
+   }
+
    @Override
    public void start()
    {
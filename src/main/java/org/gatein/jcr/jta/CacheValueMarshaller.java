@@ -0,0 +1,158 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Converts values stored to cache and read from cache according to {@link StoreMode}. Serialized values are stored
+ * wrapped, so that value stored in other mode (for example by concurrent put during change of store mode) is recognized
+ * and treated as cache miss.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class CacheValueMarshaller
+{
+   public enum StoreMode
+   {
+      /** Live object reference is stored. Changes of object after put are visible in cache */
+      REFERENCE,
+
+      /** Deep copy is stored on put and another copy is returned on get */
+      COPY,
+
+      /** Object is stored as serialized bytes and deserialized on each get */
+      SERIALIZED
+   }
+
+   private final StoreMode mode;
+
+   public CacheValueMarshaller(StoreMode mode)
+   {
+      this.mode = mode;
+   }
+
+   public StoreMode getMode()
+   {
+      return mode;
+   }
+
+   public Object marshal(Object value)
+   {
+      if (value == null)
+      {
+         return null;
+      }
+
+      switch (mode)
+      {
+         case COPY:
+            return copy(value);
+         case SERIALIZED:
+            return new SerializedValue(serialize(value));
+         default:
+            return value;
+      }
+   }
+
+   /**
+    * @return value or null if value is not in cache or it was stored in other mode
+    */
+   public Object unmarshal(Object stored)
+   {
+      if (stored == null || (stored instanceof SerializedValue) != (mode == StoreMode.SERIALIZED))
+      {
+         return null;
+      }
+
+      switch (mode)
+      {
+         case COPY:
+            return copy(stored);
+         case SERIALIZED:
+            return deserialize(((SerializedValue)stored).bytes);
+         default:
+            return stored;
+      }
+   }
+
+   // SimpleObject knows how to copy itself. Other objects are copied through serialization
+   private Object copy(Object value)
+   {
+      if (value instanceof SimpleObject)
+      {
+         return ((SimpleObject)value).copy();
+      }
+      return deserialize(serialize(value));
+   }
+
+   private byte[] serialize(Object value)
+   {
+      if (!(value instanceof Serializable))
+      {
+         throw new IllegalArgumentException("Object " + value + " can't be stored in mode " + mode + " as it's not Serializable");
+      }
+
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream out = new ObjectOutputStream(bytes);
+         out.writeObject(value);
+         out.close();
+         return bytes.toByteArray();
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException("Serialization of " + value + " failed", e);
+      }
+   }
+
+   private Object deserialize(byte[] bytes)
+   {
+      try
+      {
+         ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+         return in.readObject();
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException("Deserialization failed", e);
+      }
+   }
+
+   private static final class SerializedValue
+   {
+      private final byte[] bytes;
+
+      private SerializedValue(byte[] bytes)
+      {
+         this.bytes = bytes;
+      }
+   }
+}
@@ -0,0 +1,152 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Streaming summary of values (like access count or wait time) added for keys. Values are estimated by count-min
+ * sketch and only top K keys with highest estimate are remembered, so memory is bounded regardless of number of keys.
+ * Estimates may be higher than real values, but never lower.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class HotKeySketch
+{
+   private static final int DEPTH = 4;
+
+   private final int width;
+   private final int topK;
+   private final AtomicLongArray counters;
+   private final Map<String, Long> top = new LinkedHashMap<String, Long>();
+
+   // Lowest estimate in full top list (0 while it's not full). Keys with lower estimate can't get to top, so they are
+   // rejected without taking the lock
+   private volatile long topMinimum;
+
+   public HotKeySketch(int width, int topK)
+   {
+      this.width = width;
+      this.topK = topK;
+      this.counters = new AtomicLongArray(DEPTH * width);
+   }
+
+   public void add(String key, long value)
+   {
+      int hash = key.hashCode();
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++)
+      {
+         estimate = Math.min(estimate, counters.addAndGet(row * width + index(hash, row), value));
+      }
+      if (estimate > topMinimum)
+      {
+         updateTop(key, estimate);
+      }
+   }
+
+   /**
+    * @return snapshot of top keys with their estimated values, sorted from highest value
+    */
+   public synchronized List<Map.Entry<String, Long>> getTop()
+   {
+      // Entries are copied, as entries of top map are changed by updateTop once lock is released
+      List<Map.Entry<String, Long>> result = new ArrayList<Map.Entry<String, Long>>(top.size());
+      for (Map.Entry<String, Long> entry : top.entrySet())
+      {
+         result.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), entry.getValue()));
+      }
+      Collections.sort(result, new Comparator<Map.Entry<String, Long>>()
+      {
+         public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2)
+         {
+            return e2.getValue().compareTo(e1.getValue());
+         }
+      });
+      return result;
+   }
+
+   public synchronized void reset()
+   {
+      for (int i = 0; i < counters.length(); i++)
+      {
+         counters.set(i, 0);
+      }
+      top.clear();
+      topMinimum = 0;
+   }
+
+   private synchronized void updateTop(String key, long estimate)
+   {
+      if (top.containsKey(key) || top.size() < topK)
+      {
+         top.put(key, estimate);
+      }
+      else
+      {
+         // Replace key with lowest estimate if new key is hotter
+         String minKey = findMinimum();
+         if (estimate > top.get(minKey))
+         {
+            top.remove(minKey);
+            top.put(key, estimate);
+         }
+      }
+
+      if (top.size() >= topK)
+      {
+         topMinimum = top.get(findMinimum());
+      }
+   }
+
+   private String findMinimum()
+   {
+      String minKey = null;
+      long minValue = Long.MAX_VALUE;
+      for (Map.Entry<String, Long> entry : top.entrySet())
+      {
+         if (entry.getValue() < minValue)
+         {
+            minKey = entry.getKey();
+            minValue = entry.getValue();
+         }
+      }
+      return minKey;
+   }
+
+   // Each row uses different hash function derived from hash code of key. Multipliers must be odd to keep all bits of hash
+   private int index(int hash, int row)
+   {
+      int h = hash * (0x9E3779B9 + 2 * row);
+      h ^= h >>> 16;
+      return (h & Integer.MAX_VALUE) % width;
+   }
+}
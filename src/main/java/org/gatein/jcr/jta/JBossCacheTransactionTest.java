@@ -27,6 +27,7 @@ import org.exoplatform.management.annotations.Impact;
 import org.exoplatform.management.annotations.ImpactType;
 import org.exoplatform.management.annotations.Managed;
 import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
 import org.exoplatform.management.jmx.annotations.NameTemplate;
 import org.exoplatform.management.jmx.annotations.Property;
 import org.exoplatform.services.jcr.RepositoryService;
@@ -38,13 +39,21 @@ import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
 import org.jboss.cache.Cache;
 import org.jboss.cache.CacheFactory;
+import org.jboss.cache.CacheSPI;
 import org.jboss.cache.DefaultCacheFactory;
 import org.jboss.cache.Fqn;
 import org.jboss.cache.Node;
 import org.jboss.cache.eviction.ExpirationAlgorithmConfig;
+import org.jboss.cache.interceptors.MVCCLockingInterceptor;
+import org.jboss.cache.interceptors.base.CommandInterceptor;
 import org.picocontainer.Startable;
 
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 /**
@@ -83,21 +92,128 @@ public class JBossCacheTransactionTest implements Startable
 
    private OrganizationService orgService;
 
-   public JBossCacheTransactionTest(OrganizationService orgService)
+   private JobService jobService;
+
+   // Number of hottest keys reported by getTopKeys
+   private static final int TOP_KEYS = 10;
+
+   private final HotKeySketch accessSketch = new HotKeySketch(1024, TOP_KEYS);
+
+   private final HotKeySketch waitSketch = new HotKeySketch(1024, TOP_KEYS);
+
+   // Key statistics are off by default, so they don't slow down cache operations
+   private final AtomicBoolean keyStatisticsEnabled = new AtomicBoolean(false);
+
+   // If true, lock waits are measured by LockWaitInterceptor. Otherwise time of write operations is used
+   private boolean lockInterceptorInstalled;
+
+   private volatile CacheValueMarshaller marshaller = new CacheValueMarshaller(CacheValueMarshaller.StoreMode.REFERENCE);
+
+   public JBossCacheTransactionTest(OrganizationService orgService, JobService jobService)
    {
       this.orgService = orgService;
+      this.jobService = jobService;
+   }
+
+   @Managed
+   @ManagedDescription("Mode in which values are stored in cache. One of REFERENCE, COPY, SERIALIZED")
+   public String getStoreMode()
+   {
+      return marshaller.getMode().toString();
+   }
+
+   @Managed
+   @ManagedDescription("Change mode in which values are stored in cache. One of REFERENCE, COPY, SERIALIZED")
+   @Impact(ImpactType.WRITE)
+   public void setStoreMode(@ManagedDescription("Store mode") @ManagedName("mode") String mode)
+   {
+      CacheValueMarshaller.StoreMode storeMode = CacheValueMarshaller.StoreMode.valueOf(mode.trim().toUpperCase());
+      marshaller = new CacheValueMarshaller(storeMode);
+
+      // Values stored in previous mode can't be read in new mode
+      invalidateAll();
+      log.info("Store mode changed to " + storeMode);
+   }
+
+   @Managed
+   @ManagedDescription("If true, most accessed and most contended keys are tracked")
+   public boolean getKeyStatisticsEnabled()
+   {
+      return keyStatisticsEnabled.get();
+   }
+
+   @Managed
+   @ManagedDescription("Enable or disable tracking of most accessed and most contended keys")
+   @Impact(ImpactType.WRITE)
+   public void setKeyStatisticsEnabled(@ManagedDescription("Enabled") @ManagedName("enabled") boolean enabled)
+   {
+      keyStatisticsEnabled.set(enabled);
+   }
+
+   @Managed
+   @ManagedDescription("Most accessed Fqns and Fqns with highest total wait for write locks. Statistics are collected only " +
+         "when keyStatisticsEnabled is true")
+   public String getTopKeys()
+   {
+      StringBuilder result = new StringBuilder("Most accessed keys:\n");
+      for (Map.Entry<String, Long> entry : accessSketch.getTop())
+      {
+         result.append("   ").append(entry.getKey()).append(": ").append(entry.getValue()).append(" accesses\n");
+      }
+      result.append("Most contended keys:\n");
+      for (Map.Entry<String, Long> entry : waitSketch.getTop())
+      {
+         result.append("   ").append(entry.getKey()).append(": ")
+               .append(String.format("%.3f ms", entry.getValue() / 1000000d)).append(" total wait\n");
+      }
+      return result.toString();
+   }
+
+   @Managed
+   @ManagedDescription("Reset statistics of most accessed and most contended keys")
+   @Impact(ImpactType.WRITE)
+   public void resetKeyStatistics()
+   {
+      accessSketch.reset();
+      waitSketch.reset();
+   }
+
+   /**
+    * @param write true for operations, which acquire write lock. Their time is used as lock wait only if
+    * LockWaitInterceptor couldn't be installed
+    */
+   private void recordAccess(Fqn fqn, long nanos, boolean write)
+   {
+      String key = String.valueOf(fqn);
+      accessSketch.add(key, 1);
+      if (write && !lockInterceptorInstalled)
+      {
+         waitSketch.add(key, nanos);
+      }
    }
 
    private void putGtnUserLazyPageList(String ns, Object objectToPut)
+   {
+      putGtnUserLazyPageList(ns, objectToPut, marshaller);
+   }
+
+   private void putGtnUserLazyPageList(String ns, Object objectToPut, CacheValueMarshaller marshaller)
    {
       Fqn nodeFqn = getFqn(ns, USER_QUERY_NODE, "null::null::null::null::null::null:::");
+      Object marshalled = marshaller.marshal(objectToPut);
 
+      boolean statistics = keyStatisticsEnabled.get();
+      long start = statistics ? System.nanoTime() : 0;
       Node ioNode = cache.getRoot().addChild(nodeFqn);
 
       if (ioNode != null)
       {
-         ioNode.put(NODE_OBJECT_KEY, objectToPut);
+         ioNode.put(NODE_OBJECT_KEY, marshalled);
          setExpiration(ioNode);
+         if (statistics)
+         {
+            recordAccess(nodeFqn, System.nanoTime() - start, true);
+         }
 
          if (log.isTraceEnabled())
          {
@@ -109,15 +225,27 @@ public class JBossCacheTransactionTest implements Startable
 
 
    private Object getGtnUserLazyPageList(String ns)
+   {
+      return getGtnUserLazyPageList(ns, marshaller);
+   }
+
+   private Object getGtnUserLazyPageList(String ns, CacheValueMarshaller marshaller)
    {
 
       Fqn nodeFqn = getFqn(ns, USER_QUERY_NODE, "null::null::null::null::null::null:::");
 
+      boolean statistics = keyStatisticsEnabled.get();
+      long start = statistics ? System.nanoTime() : 0;
       Node node = cache.getRoot().getChild(nodeFqn);
 
       if (node != null)
       {
-         Object result = node.get(NODE_OBJECT_KEY);
+         Object stored = node.get(NODE_OBJECT_KEY);
+         if (statistics)
+         {
+            recordAccess(nodeFqn, System.nanoTime() - start, false);
+         }
+         Object result = marshaller.unmarshal(stored);
 
          if (log.isTraceEnabled() && result != null)
          {
@@ -127,6 +255,10 @@ public class JBossCacheTransactionTest implements Startable
          return result;
       }
 
+      if (statistics)
+      {
+         recordAccess(nodeFqn, System.nanoTime() - start, false);
+      }
       return null;
 
    }
@@ -134,7 +266,13 @@ public class JBossCacheTransactionTest implements Startable
 
    private void invalidateAll()
    {
+      boolean statistics = keyStatisticsEnabled.get();
+      long start = statistics ? System.nanoTime() : 0;
       boolean success = cache.getRoot().removeChild(getRootNode());
+      if (statistics)
+      {
+         recordAccess(getRootNode(), System.nanoTime() - start, true);
+      }
 
       if (log.isTraceEnabled())
       {
@@ -215,6 +353,94 @@ public class JBossCacheTransactionTest implements Startable
    }
 
 
+   @Managed
+   @ManagedDescription("Benchmark of put and get with each store mode. See server log once you execute this operation.")
+   @Impact(ImpactType.WRITE)
+   public String testStoreModes(@ManagedDescription("Number of put+get pairs for each mode") @ManagedName("iterations") int iterations,
+                                @ManagedDescription("Size of binary payload of each SimpleObject in bytes") @ManagedName("payloadSize") int payloadSize,
+                                @ManagedDescription("Number of nested SimpleObjects") @ManagedName("depth") int depth)
+   {
+      return storeModes(iterations, payloadSize, depth, new JobProgress());
+   }
+
+   @Managed
+   @ManagedDescription("Asynchronous variant of testStoreModes. Returns id of job, which can be watched in JobService.")
+   @Impact(ImpactType.WRITE)
+   public int startStoreModes(@ManagedDescription("Number of put+get pairs for each mode") @ManagedName("iterations") final int iterations,
+                              @ManagedDescription("Size of binary payload of each SimpleObject in bytes") @ManagedName("payloadSize") final int payloadSize,
+                              @ManagedDescription("Number of nested SimpleObjects") @ManagedName("depth") final int depth)
+   {
+      return jobService.submit("storeModes", new Job()
+      {
+         public String run(JobProgress progress) throws Exception
+         {
+            return storeModes(iterations, payloadSize, depth, progress);
+         }
+      });
+   }
+
+   private String storeModes(int iterations, int payloadSize, int depth, JobProgress progress)
+   {
+      log.info("Starting the store modes test. iterations=" + iterations + ", payloadSize=" + payloadSize + ", depth=" + depth);
+
+      String ns = "store_mode_benchmark";
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean)threadBean : null;
+      long threadId = Thread.currentThread().getId();
+
+      StringBuilder report = new StringBuilder();
+      for (CacheValueMarshaller.StoreMode mode : CacheValueMarshaller.StoreMode.values())
+      {
+         progress.setStatus("measuring mode " + mode);
+         CacheValueMarshaller modeMarshaller = new CacheValueMarshaller(mode);
+         SimpleObject value = new SimpleObject(payloadSize, depth);
+
+         // Warm up, so that JIT compilation is not measured
+         for (int i = 0; i < Math.min(iterations, 1000); i++)
+         {
+            putGtnUserLazyPageList(ns, value, modeMarshaller);
+            getGtnUserLazyPageList(ns, modeMarshaller);
+         }
+
+         long allocatedBefore = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : -1;
+         long start = System.nanoTime();
+         for (int i = 0; i < iterations; i++)
+         {
+            long opStart = System.nanoTime();
+            putGtnUserLazyPageList(ns, value, modeMarshaller);
+            getGtnUserLazyPageList(ns, modeMarshaller);
+            progress.recordOperation(System.nanoTime() - opStart);
+            if (i % 1000 == 0)
+            {
+               progress.checkCancelled();
+            }
+         }
+         long elapsedNanos = System.nanoTime() - start;
+         long allocated = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+
+         // Check isolation. Change of original object must not be visible in cache except of REFERENCE mode.
+         // Value may be missing if it expired or if store mode was changed concurrently
+         putGtnUserLazyPageList(ns, value, modeMarshaller);
+         value.changeState();
+         SimpleObject cached = (SimpleObject)getGtnUserLazyPageList(ns, modeMarshaller);
+         String isolated = cached != null ? String.valueOf(cached.getSize() != value.getSize()) : "not measured";
+
+         double seconds = elapsedNanos / 1000000000d;
+         String line = "mode=" + mode +
+               ", isolated=" + isolated +
+               ", throughput=" + String.format("%.0f put+get/s", iterations / seconds) +
+               ", allocated=" + (allocated >= 0 ? String.format("%.0f bytes/op, %.1f MB/s", (double)allocated / iterations,
+               allocated / 1048576d / seconds) : "n/a");
+         log.info(line);
+         report.append(line).append("\n");
+      }
+
+      // Only namespace of this test is removed, so that other cached entries are kept
+      cache.getRoot().removeChild(getNamespacedFqn(ns));
+      return report.toString();
+   }
+
    private Fqn getRootNode()
    {
       return Fqn.fromString("/" + MAIN_ROOT);
@@ -244,10 +470,45 @@ public class JBossCacheTransactionTest implements Startable
       this.cache = factory.createCache(jbossCacheConfiguration);
 
       this.cache.create();
+      installLockWaitInterceptor();
       this.cache.start();
 
    }
 
+   /**
+    * Place LockWaitInterceptor pair around MVCC locking interceptor, so that real lock-acquisition wait is measured
+    */
+   private void installLockWaitInterceptor()
+   {
+      try
+      {
+         CacheSPI cacheSPI = (CacheSPI)cache;
+         int lockingPosition = -1;
+         List<CommandInterceptor> chain = cacheSPI.getInterceptorChain();
+         for (int i = 0; i < chain.size(); i++)
+         {
+            if (chain.get(i) instanceof MVCCLockingInterceptor)
+            {
+               lockingPosition = i;
+            }
+         }
+         if (lockingPosition == -1)
+         {
+            log.warn("MVCCLockingInterceptor not found. Time of write operations will be used as lock wait");
+            return;
+         }
+
+         LockWaitInterceptor[] interceptors = LockWaitInterceptor.createPair(waitSketch, keyStatisticsEnabled);
+         cacheSPI.addInterceptor(interceptors[1], lockingPosition + 1);
+         cacheSPI.addInterceptor(interceptors[0], lockingPosition);
+         lockInterceptorInstalled = true;
+      }
+      catch (Exception e)
+      {
+         log.warn("Failed to install LockWaitInterceptor. Time of write operations will be used as lock wait", e);
+      }
+   }
+
    private void setExpiration(Node node)
    {
       if (expiration != -1 && expiration > 0)
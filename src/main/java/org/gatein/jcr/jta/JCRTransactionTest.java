@@ -23,19 +23,30 @@
 
 package org.gatein.jcr.jta;
 
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
 import org.exoplatform.management.annotations.Impact;
 import org.exoplatform.management.annotations.ImpactType;
 import org.exoplatform.management.annotations.Managed;
 import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
 import org.exoplatform.management.jmx.annotations.NameTemplate;
 import org.exoplatform.management.jmx.annotations.Property;
 import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.config.ValueStorageEntry;
+import org.exoplatform.services.jcr.config.ValueStorageFilterEntry;
+import org.exoplatform.services.jcr.config.WorkspaceEntry;
+import org.exoplatform.services.jcr.core.value.ReadableBinaryValue;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
 import org.exoplatform.services.jcr.core.ManageableRepository;
 import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
 import org.picocontainer.Startable;
 
+import javax.jcr.InvalidItemStateException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
@@ -43,6 +54,25 @@ import javax.jcr.query.QueryResult;
 import javax.naming.InitialContext;
 import javax.transaction.Status;
 import javax.transaction.UserTransaction;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  * Simple component for testing JCR behaviour in JTA/non-JTA environment
@@ -59,10 +89,23 @@ public class JCRTransactionTest implements Startable
 {
    private static final Logger log = LoggerFactory.getLogger(JCRTransactionTest.class);
    private RepositoryService repositoryService;
+   private JobService jobService;
 
-   public JCRTransactionTest(RepositoryService repositoryService)
+   // Number of files in each partition, which are updated by all workers in overlapping mode
+   private static final int SHARED_FILES = 4;
+
+   private static final int MAX_RETRIES = 5;
+
+   // Number of nodes added or removed before JCR session is saved
+   private static final int SAVE_BATCH = 1000;
+
+   // How often heap and spool directory are sampled during binary streaming test
+   private static final long SAMPLE_INTERVAL_MILLIS = 100;
+
+   public JCRTransactionTest(RepositoryService repositoryService, JobService jobService)
    {
       this.repositoryService = repositoryService;
+      this.jobService = jobService;
    }
 
    @Managed
@@ -202,6 +245,806 @@ public class JCRTransactionTest implements Startable
       log.info("JCR session saved");
 
       JTAHelper.finishJTATransaction();
+
+      session.logout();
+   }
+
+   @Managed
+   @ManagedDescription("Soak test. Repeats testNonJTA, testJTA and testRollback in asynchronous job until given time elapses " +
+         "or job is cancelled. Returns id of job, which can be watched in JobService.")
+   @Impact(ImpactType.WRITE)
+   public int startSoakTest(@ManagedDescription("Duration of test in seconds") @ManagedName("durationSeconds") final long durationSeconds)
+   {
+      return jobService.submit("soakTest", new Job()
+      {
+         public String run(JobProgress progress) throws Exception
+         {
+            long end = System.currentTimeMillis() + durationSeconds * 1000;
+            long cycles = 0;
+            while (System.currentTimeMillis() < end)
+            {
+               progress.checkCancelled();
+               long start = System.nanoTime();
+               testNonJTA();
+               testJTA();
+               testRollback();
+               progress.recordOperation(System.nanoTime() - start);
+               progress.setStatus("finished " + ++cycles + " cycles");
+            }
+            return "Soak test finished. " + progress;
+         }
+      });
+   }
+
+   @Managed
+   @ManagedDescription("Parallel write benchmark. Workers write, update and remove nt:file nodes, each with its own JCR session " +
+         "and JTA transaction. Runs with 1, 2, 4 ... up to given number of workers. See server log once you execute this operation.")
+   @Impact(ImpactType.WRITE)
+   public String testParallelWrites(@ManagedDescription("Maximum number of workers") @ManagedName("workers") int workers,
+                                    @ManagedDescription("Number of transactions per worker") @ManagedName("iterations") int iterations,
+                                    @ManagedDescription("If true, all workers share partition '/test/shared'. Otherwise each worker writes to '/test/w{n}'")
+                                    @ManagedName("overlapping") boolean overlapping) throws Exception
+   {
+      return parallelWrites(workers, iterations, overlapping, new JobProgress());
+   }
+
+   @Managed
+   @ManagedDescription("Asynchronous variant of testParallelWrites. Returns id of job, which can be watched in JobService.")
+   @Impact(ImpactType.WRITE)
+   public int startParallelWrites(@ManagedDescription("Maximum number of workers") @ManagedName("workers") final int workers,
+                                  @ManagedDescription("Number of transactions per worker") @ManagedName("iterations") final int iterations,
+                                  @ManagedDescription("If true, all workers share partition '/test/shared'. Otherwise each worker writes to '/test/w{n}'")
+                                  @ManagedName("overlapping") final boolean overlapping)
+   {
+      return jobService.submit("parallelWrites", new Job()
+      {
+         public String run(JobProgress progress) throws Exception
+         {
+            return parallelWrites(workers, iterations, overlapping, progress);
+         }
+      });
+   }
+
+   private String parallelWrites(int workers, int iterations, boolean overlapping, JobProgress progress) throws Exception
+   {
+      if (workers < 1)
+      {
+         throw new IllegalArgumentException("Number of workers must be at least 1, but was " + workers);
+      }
+
+      log.info("Starting the parallel write test. workers=" + workers + ", iterations=" + iterations + ", overlapping=" + overlapping);
+
+      StringBuilder report = new StringBuilder();
+      List<Integer> workerCounts = new ArrayList<Integer>();
+      for (int count = 1; count < workers; count = count * 2)
+      {
+         workerCounts.add(count);
+      }
+      workerCounts.add(workers);
+
+      for (int count : workerCounts)
+      {
+         progress.setStatus("running with " + count + " workers");
+         String line = runParallelWrites(count, iterations, overlapping, progress);
+         log.info(line);
+         report.append(line).append("\n");
+      }
+      return report.toString();
+   }
+
+   private String runParallelWrites(int workers, final int iterations, final boolean overlapping, final JobProgress progress) throws Exception
+   {
+      final ManageableRepository repo = repositoryService.getDefaultRepository();
+
+      // Prepare partitions in separate session, so that workers start from the same state
+      Session setupSession = repo.getSystemSession("portal-work");
+      List<String> partitions = new ArrayList<String>();
+      try
+      {
+         Node testNode = getTestNode(setupSession);
+         for (int i = 0; i < workers; i++)
+         {
+            String partition = overlapping ? "shared" : "w" + i;
+            if (partitions.contains(partition))
+            {
+               continue;
+            }
+            if (testNode.hasNode(partition))
+            {
+               testNode.getNode(partition).remove();
+            }
+            Node partitionNode = testNode.addNode(partition, "nt:folder");
+            for (int j = 0; j < SHARED_FILES; j++)
+            {
+               addFile(partitionNode, "shared" + j);
+            }
+            partitions.add(partition);
+         }
+         setupSession.save();
+
+         final WriteStats stats = new WriteStats();
+         final CountDownLatch startLatch = new CountDownLatch(1);
+         final AtomicBoolean stopWorkers = new AtomicBoolean();
+
+         // Workers run with the same container and request lifecycle as job thread, which started them
+         final ExoContainer container = ExoContainerContext.getCurrentContainer();
+         ExecutorService executor = Executors.newFixedThreadPool(workers);
+         List<Future<Object>> futures = new ArrayList<Future<Object>>();
+         for (int i = 0; i < workers; i++)
+         {
+            final int worker = i;
+            final String partitionPath = "test/" + (overlapping ? "shared" : "w" + i);
+            futures.add(executor.submit(new Callable<Object>()
+            {
+               public Object call() throws Exception
+               {
+                  ExoContainer previousContainer = ExoContainerContext.getCurrentContainerIfPresent();
+                  ExoContainerContext.setCurrentContainer(container);
+                  RequestLifeCycle.begin(container);
+                  try
+                  {
+                     Session session = repo.getSystemSession("portal-work");
+                     try
+                     {
+                        startLatch.await();
+                        for (int it = 0; it < iterations && !stopWorkers.get(); it++)
+                        {
+                           progress.checkCancelled();
+                           writeWithRetries(session, partitionPath, worker, it, stats, progress);
+                        }
+                     }
+                     finally
+                     {
+                        session.logout();
+                     }
+                     return null;
+                  }
+                  finally
+                  {
+                     try
+                     {
+                        RequestLifeCycle.end();
+                     }
+                     finally
+                     {
+                        ExoContainerContext.setCurrentContainer(previousContainer);
+                     }
+                  }
+               }
+            }));
+         }
+
+         long start = System.nanoTime();
+         startLatch.countDown();
+         try
+         {
+            for (Future<Object> future : futures)
+            {
+               future.get();
+            }
+         }
+         finally
+         {
+            // Stops remaining workers if one of them failed. Workers are not interrupted as interrupt closes NIO channels,
+            // which JCR may be writing to. They stop after their current transaction
+            stopWorkers.set(true);
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         }
+         long elapsedNanos = System.nanoTime() - start;
+
+         return stats.toString(workers, elapsedNanos);
+      }
+      finally
+      {
+         removePartitions(setupSession, partitions);
+         setupSession.logout();
+      }
+   }
+
+   @Managed
+   @ManagedDescription("Streams binary content of growing size (multiplied by 8 in each step) into jcr:data of nt:file and reads it " +
+         "back. Each size is tested outside and inside of JTA transaction. See server log once you execute this operation.")
+   @Impact(ImpactType.WRITE)
+   public String testBinaryStreaming(@ManagedDescription("Size of smallest binary in kilobytes") @ManagedName("minSizeKB") long minSizeKB,
+                                     @ManagedDescription("Size of biggest binary in kilobytes") @ManagedName("maxSizeKB") long maxSizeKB,
+                                     @ManagedDescription("Directory where JCR spools binary values. Default is java.io.tmpdir")
+                                     @ManagedName("spoolDir") String spoolDir) throws Exception
+   {
+      return binaryStreaming(minSizeKB, maxSizeKB, spoolDir, new JobProgress());
+   }
+
+   @Managed
+   @ManagedDescription("Asynchronous variant of testBinaryStreaming. Returns id of job, which can be watched in JobService.")
+   @Impact(ImpactType.WRITE)
+   public int startBinaryStreaming(@ManagedDescription("Size of smallest binary in kilobytes") @ManagedName("minSizeKB") final long minSizeKB,
+                                   @ManagedDescription("Size of biggest binary in kilobytes") @ManagedName("maxSizeKB") final long maxSizeKB,
+                                   @ManagedDescription("Directory where JCR spools binary values. Default is java.io.tmpdir")
+                                   @ManagedName("spoolDir") final String spoolDir)
+   {
+      return jobService.submit("binaryStreaming", new Job()
+      {
+         public String run(JobProgress progress) throws Exception
+         {
+            return binaryStreaming(minSizeKB, maxSizeKB, spoolDir, progress);
+         }
+      });
+   }
+
+   private String binaryStreaming(long minSizeKB, long maxSizeKB, String spoolDir, JobProgress progress) throws Exception
+   {
+      log.info("Starting the binary streaming test. minSizeKB=" + minSizeKB + ", maxSizeKB=" + maxSizeKB);
+
+      File spoolDirectory = new File(spoolDir != null && spoolDir.length() > 0 ? spoolDir : System.getProperty("java.io.tmpdir"));
+      StringBuilder report = new StringBuilder();
+      for (long sizeKB = Math.max(1, minSizeKB); sizeKB <= maxSizeKB; sizeKB = sizeKB * 8)
+      {
+         for (boolean jta : new boolean[] { false, true })
+         {
+            progress.checkCancelled();
+            progress.setStatus("streaming " + formatBytes(sizeKB * 1024) + ", jta=" + jta);
+            long start = System.nanoTime();
+            String line = runBinaryStreaming(sizeKB * 1024, jta, spoolDirectory);
+            progress.recordOperation(System.nanoTime() - start);
+            log.info(line);
+            report.append(line).append("\n");
+         }
+      }
+      return report.toString();
+   }
+
+   private String runBinaryStreaming(long size, boolean jta, File spoolDir) throws Exception
+   {
+      ManageableRepository repo = repositoryService.getDefaultRepository();
+      Session session = repo.getSystemSession("portal-work");
+      ResourceSampler sampler = new ResourceSampler(spoolDir, SAMPLE_INTERVAL_MILLIS);
+      try
+      {
+         Node testNode = getTestNode(session);
+         String fileName = "binary-" + size + (jta ? "-jta" : "");
+         if (testNode.hasNode(fileName))
+         {
+            testNode.getNode(fileName).remove();
+            session.save();
+         }
+
+         // Upload
+         System.gc();
+         long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+         long spoolBefore = ResourceSampler.directorySize(spoolDir);
+         sampler.start();
+
+         long start = System.nanoTime();
+         if (jta)
+         {
+            JTAHelper.beginJTATransaction();
+         }
+         Node file = testNode.addNode(fileName, "nt:file");
+         Node content = file.addNode("jcr:content", "nt:resource");
+         content.setProperty("jcr:mimeType", "application/octet-stream");
+         content.setProperty("jcr:lastModified", Calendar.getInstance());
+         content.setProperty("jcr:data", new PatternInputStream(size));
+         session.save();
+         if (jta)
+         {
+            JTAHelper.finishJTATransaction();
+         }
+         long uploadNanos = System.nanoTime() - start;
+
+         // Download. Each binary value implements ReadableBinaryValue, but zero-copy transfer is possible only if value
+         // is kept by file value storage
+         if (jta)
+         {
+            JTAHelper.beginJTATransaction();
+         }
+         start = System.nanoTime();
+         javax.jcr.Property dataProperty = testNode.getNode(fileName).getNode("jcr:content").getProperty("jcr:data");
+         CountingOutputStream out = new CountingOutputStream();
+         javax.jcr.Value dataValue = dataProperty.getValue();
+         boolean readable = dataValue instanceof ReadableBinaryValue;
+         if (readable)
+         {
+            ((ReadableBinaryValue)dataValue).read(out, size, 0);
+         }
+         else
+         {
+            InputStream in = dataProperty.getStream();
+            try
+            {
+               byte[] buffer = new byte[64 * 1024];
+               int read;
+               while ((read = in.read(buffer)) != -1)
+               {
+                  out.write(buffer, 0, read);
+               }
+            }
+            finally
+            {
+               in.close();
+            }
+         }
+         long downloadNanos = System.nanoTime() - start;
+         if (jta)
+         {
+            JTAHelper.finishJTATransaction();
+         }
+         sampler.stop();
+
+         // Verification is done out of measured section
+         if (out.count != size || out.crc.getValue() != PatternInputStream.checksum(size))
+         {
+            log.warn("Binary content of '" + fileName + "' is corrupted. Expected size " + size + ", read " + out.count);
+         }
+
+         testNode.getNode(fileName).remove();
+         session.save();
+
+         return "size=" + formatBytes(size) +
+               ", jta=" + jta +
+               ", upload=" + formatThroughput(size, uploadNanos) +
+               ", download=" + formatThroughput(size, downloadNanos) + (readable ? " (ReadableBinaryValue" : " (stream") +
+               ", storage=" + getBinaryStorage(repo, "portal-work", size) + ")" +
+               ", maxHeapGrowth=" + formatBytes(sampler.getMaxHeapUsed() - heapBefore) +
+               ", maxSpoolGrowth=" + formatBytes(sampler.getMaxSpoolBytes() - spoolBefore);
+      }
+      finally
+      {
+         sampler.stop();
+         if (jta)
+         {
+            // Don't leave unfinished transaction bound to this thread, which may be pooled
+            UserTransaction tx = JTAHelper.getUserTransaction();
+            if (tx.getStatus() != Status.STATUS_NO_TRANSACTION)
+            {
+               log.warn("Rolling back unfinished UserTransaction of binary streaming test");
+               tx.rollback();
+            }
+         }
+         session.logout();
+      }
+   }
+
+   /**
+    * @return id of file value storage, whose filters accept jcr:data of given size, or "database" if the value is stored
+    * in database. Ancestor path filters are not taken into account
+    */
+   private static String getBinaryStorage(ManageableRepository repo, String workspace, long size)
+   {
+      for (WorkspaceEntry wsEntry : repo.getConfiguration().getWorkspaceEntries())
+      {
+         if (!wsEntry.getName().equals(workspace) || wsEntry.getContainer().getValueStorages() == null)
+         {
+            continue;
+         }
+         for (ValueStorageEntry storage : wsEntry.getContainer().getValueStorages())
+         {
+            if (storage.getType() == null || !storage.getType().endsWith("FileValueStorage") || storage.getFilters() == null)
+            {
+               continue;
+            }
+            for (ValueStorageFilterEntry filter : storage.getFilters())
+            {
+               if ((filter.getPropertyType() == null || "Binary".equalsIgnoreCase(filter.getPropertyType())) &&
+                     (filter.getPropertyName() == null || "jcr:data".equals(filter.getPropertyName())) &&
+                     (filter.getMinValueSize() == null || filter.getMinValueSize() <= size))
+               {
+                  return "file value storage '" + storage.getId() + "' (zero-copy)";
+               }
+            }
+         }
+      }
+      return "database";
+   }
+
+   private static String formatThroughput(long bytes, long nanos)
+   {
+      return String.format("%.1f MB/s", bytes / 1048576d / (nanos / 1000000000d));
+   }
+
+   private static String formatBytes(long bytes)
+   {
+      if (Math.abs(bytes) >= 1048576)
+      {
+         return String.format("%.1f MB", bytes / 1048576d);
+      }
+      return String.format("%.1f KB", bytes / 1024d);
+   }
+
+   @Managed
+   @ManagedDescription("Grows '/test/query' from 1000 children up to given count (multiplied by 10 in each step) and compares " +
+         "SQL LIKE query, XPath query, paged query and Node.getNodes() traversal. See server log once you execute this operation.")
+   @Impact(ImpactType.WRITE)
+   public String testQueryStrategies(@ManagedDescription("Maximum number of children of '/test/query'") @ManagedName("maxChildren") int maxChildren,
+                                     @ManagedDescription("Page size used by paged query") @ManagedName("pageSize") int pageSize) throws Exception
+   {
+      return queryStrategies(maxChildren, pageSize, new JobProgress());
+   }
+
+   @Managed
+   @ManagedDescription("Asynchronous variant of testQueryStrategies. Returns id of job, which can be watched in JobService.")
+   @Impact(ImpactType.WRITE)
+   public int startQueryStrategies(@ManagedDescription("Maximum number of children of '/test/query'") @ManagedName("maxChildren") final int maxChildren,
+                                   @ManagedDescription("Page size used by paged query") @ManagedName("pageSize") final int pageSize)
+   {
+      return jobService.submit("queryStrategies", new Job()
+      {
+         public String run(JobProgress progress) throws Exception
+         {
+            return queryStrategies(maxChildren, pageSize, progress);
+         }
+      });
+   }
+
+   private String queryStrategies(int maxChildren, int pageSize, JobProgress progress) throws Exception
+   {
+      if (pageSize < 1)
+      {
+         throw new IllegalArgumentException("Page size must be at least 1, but was " + pageSize);
+      }
+
+      log.info("Starting the query strategies test. maxChildren=" + maxChildren + ", pageSize=" + pageSize);
+
+      ManageableRepository repo = repositoryService.getDefaultRepository();
+      Session session = repo.getSystemSession("portal-work");
+      StringBuilder report = new StringBuilder();
+      try
+      {
+         Node testNode = getTestNode(session);
+         if (testNode.hasNode("query"))
+         {
+            removeInBatches(session, testNode.getNode("query"));
+         }
+         Node queryNode = testNode.addNode("query", "nt:folder");
+         session.save();
+
+         int children = 0;
+         for (int target = Math.min(1000, maxChildren); ; target = (int)Math.min(target * 10L, maxChildren))
+         {
+            // Grow the tree. Session is saved in batches to not keep whole change log in memory
+            progress.setStatus("growing '/test/query' to " + target + " children");
+            while (children < target)
+            {
+               progress.checkCancelled();
+               queryNode.addNode("n" + children++, "nt:folder");
+               if (children % SAVE_BATCH == 0)
+               {
+                  session.save();
+               }
+            }
+            session.save();
+
+            progress.setStatus("querying " + children + " children");
+            long start = System.nanoTime();
+            QueryManager queryMgr = session.getWorkspace().getQueryManager();
+            List<String> lines = new ArrayList<String>();
+            lines.add(measureQuery("sql", queryMgr.createQuery("SELECT * FROM nt:folder WHERE jcr:path LIKE '/test/query/%'", Query.SQL), children));
+            lines.add(measureQuery("xpath", queryMgr.createQuery("/jcr:root/test/query/element(*, nt:folder)", Query.XPATH), children));
+            lines.add(measurePagedQuery(queryMgr, pageSize, children));
+            lines.add(measureTraversal(queryNode, children));
+            progress.recordOperation(System.nanoTime() - start);
+            for (String line : lines)
+            {
+               log.info(line);
+               report.append(line).append("\n");
+            }
+
+            // Last step is done with exactly maxChildren children
+            if (target == maxChildren)
+            {
+               break;
+            }
+         }
+      }
+      finally
+      {
+         // Children are always removed, so that they don't stay under '/test' after failure or cancel
+         progress.setStatus("removing '/test/query'");
+         removeQueryNode(session);
+         session.logout();
+      }
+      return report.toString();
+   }
+
+   private void removeQueryNode(Session session)
+   {
+      try
+      {
+         session.refresh(false);
+         Node testNode = getTestNode(session);
+         if (testNode.hasNode("query"))
+         {
+            removeInBatches(session, testNode.getNode("query"));
+         }
+      }
+      catch (Exception e)
+      {
+         log.warn("Failed to remove '/test/query'", e);
+      }
+   }
+
+   /**
+    * Remove node with unknown number of children. Children are removed in batches, each batch saved separately
+    */
+   private void removeInBatches(Session session, Node node) throws Exception
+   {
+      int removed;
+      do
+      {
+         removed = 0;
+         NodeIterator children = node.getNodes();
+         while (children.hasNext() && removed < SAVE_BATCH)
+         {
+            children.nextNode().remove();
+            removed++;
+         }
+         session.save();
+      }
+      while (removed == SAVE_BATCH);
+      node.remove();
+      session.save();
+   }
+
+   private String measureQuery(String strategy, Query query, int children) throws Exception
+   {
+      QueryMeasurement m = new QueryMeasurement(strategy, children);
+      long start = System.nanoTime();
+      NodeIterator nodes = query.execute().getNodes();
+      m.executeNanos = System.nanoTime() - start;
+      m.executeAllocated = allocatedBytes() - m.allocatedBefore;
+
+      // getSize() may force the whole result to be materialized, so it is measured separately from iteration.
+      // Heap is sampled right after each step, while the iterator is still in use
+      long allocated = allocatedBytes();
+      start = System.nanoTime();
+      m.size = nodes.getSize();
+      m.sizeNanos = System.nanoTime() - start;
+      m.sizeAllocated = allocatedBytes() - allocated;
+      m.sampleHeap();
+
+      allocated = allocatedBytes();
+      start = System.nanoTime();
+      m.iterated = iterate(nodes);
+      m.iterateNanos = System.nanoTime() - start;
+      m.iterateAllocated = allocatedBytes() - allocated;
+      m.sampleHeap();
+
+      return m.toString();
+   }
+
+   private String measurePagedQuery(QueryManager queryMgr, int pageSize, int children) throws Exception
+   {
+      QueryMeasurement m = new QueryMeasurement("paged(" + pageSize + ")", children);
+      long pageCount = 0;
+      while (true)
+      {
+         Query query = queryMgr.createQuery("/jcr:root/test/query/element(*, nt:folder)", Query.XPATH);
+         if (!(query instanceof QueryImpl))
+         {
+            return "strategy=paged, not supported by query implementation " + query.getClass().getName();
+         }
+         ((QueryImpl)query).setOffset(m.iterated);
+         ((QueryImpl)query).setLimit(pageSize);
+
+         long allocated = allocatedBytes();
+         long start = System.nanoTime();
+         NodeIterator nodes = query.execute().getNodes();
+         m.executeNanos += System.nanoTime() - start;
+         m.executeAllocated += allocatedBytes() - allocated;
+
+         allocated = allocatedBytes();
+         start = System.nanoTime();
+         long pageIterated = iterate(nodes);
+         m.iterateNanos += System.nanoTime() - start;
+         m.iterateAllocated += allocatedBytes() - allocated;
+         m.sampleHeap();
+
+         m.iterated += pageIterated;
+         pageCount++;
+         if (pageIterated < pageSize)
+         {
+            break;
+         }
+      }
+      m.strategy = "paged(" + pageSize + " x " + pageCount + ")";
+      return m.toString();
+   }
+
+   private String measureTraversal(Node queryNode, int children) throws Exception
+   {
+      QueryMeasurement m = new QueryMeasurement("traversal", children);
+      long start = System.nanoTime();
+      NodeIterator nodes = queryNode.getNodes();
+      m.executeNanos = System.nanoTime() - start;
+      m.executeAllocated = allocatedBytes() - m.allocatedBefore;
+
+      long allocated = allocatedBytes();
+      start = System.nanoTime();
+      m.size = nodes.getSize();
+      m.sizeNanos = System.nanoTime() - start;
+      m.sizeAllocated = allocatedBytes() - allocated;
+      m.sampleHeap();
+
+      allocated = allocatedBytes();
+      start = System.nanoTime();
+      m.iterated = iterate(nodes);
+      m.iterateNanos = System.nanoTime() - start;
+      m.iterateAllocated = allocatedBytes() - allocated;
+      m.sampleHeap();
+
+      return m.toString();
+   }
+
+   private long iterate(NodeIterator nodes) throws Exception
+   {
+      long count = 0;
+      while (nodes.hasNext())
+      {
+         nodes.nextNode().getName();
+         count++;
+      }
+      return count;
+   }
+
+   /**
+    * @return bytes allocated by current thread so far or -1 if JVM can't measure it
+    */
+   private static long allocatedBytes()
+   {
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      if (threadBean instanceof com.sun.management.ThreadMXBean)
+      {
+         return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1;
+   }
+
+   private void removePartitions(Session session, List<String> partitions)
+   {
+      try
+      {
+         session.refresh(false);
+         Node testNode = getTestNode(session);
+         for (String partition : partitions)
+         {
+            if (testNode.hasNode(partition))
+            {
+               testNode.getNode(partition).remove();
+            }
+         }
+         session.save();
+      }
+      catch (Exception e)
+      {
+         log.warn("Failed to remove partitions " + partitions, e);
+      }
+   }
+
+   /**
+    * One transaction of worker. Adds new file, updates file from previous iteration (or one of shared files in overlapping
+    * mode) and removes file created two iterations ago. Transaction is retried when it fails with {@link InvalidItemStateException},
+    * either thrown directly by save or wrapped by exception from commit.
+    */
+   private void writeWithRetries(Session session, String partitionPath, int worker, int iteration, WriteStats stats,
+                                 JobProgress progress) throws Exception
+   {
+      UserTransaction tx = JTAHelper.getUserTransaction();
+      long txStart = System.nanoTime();
+      for (int attempt = 0; attempt <= MAX_RETRIES; attempt++)
+      {
+         if (attempt > 0)
+         {
+            stats.retries.incrementAndGet();
+         }
+
+         tx.begin();
+         try
+         {
+            Node partitionNode = (Node)session.getItem("/" + partitionPath);
+            addFile(partitionNode, "f" + worker + "_" + iteration);
+
+            String toUpdate = "f" + worker + "_" + (iteration - 1);
+            if (!partitionNode.hasNode(toUpdate) || partitionPath.endsWith("shared"))
+            {
+               toUpdate = "shared" + (iteration % SHARED_FILES);
+            }
+            updateFile(partitionNode.getNode(toUpdate), iteration);
+
+            String toRemove = "f" + worker + "_" + (iteration - 2);
+            if (partitionNode.hasNode(toRemove))
+            {
+               partitionNode.getNode(toRemove).remove();
+            }
+
+            // Time spent in save and commit is where persistence layer waits for locks
+            long saveStart = System.nanoTime();
+            session.save();
+            tx.commit();
+            stats.saveNanos.addAndGet(System.nanoTime() - saveStart);
+            stats.committed.incrementAndGet();
+            progress.recordOperation(System.nanoTime() - txStart);
+            return;
+         }
+         catch (Exception e)
+         {
+            if (isConflict(e))
+            {
+               stats.conflicts.incrementAndGet();
+               rollbackQuietly(session, tx);
+               continue;
+            }
+            stats.failures.incrementAndGet();
+            stats.failedAttempts.incrementAndGet();
+            log.warn("Transaction of worker " + worker + " failed in iteration " + iteration, e);
+            rollbackQuietly(session, tx);
+            return;
+         }
+      }
+      stats.failures.incrementAndGet();
+   }
+
+   /**
+    * With JTA, changes are persisted during commit. Concurrent modification then comes as RollbackException or
+    * HeuristicMixedException with {@link InvalidItemStateException} somewhere in its causes
+    */
+   private static boolean isConflict(Throwable t)
+   {
+      for (Throwable cause = t; cause != null; cause = cause.getCause())
+      {
+         if (cause instanceof InvalidItemStateException)
+         {
+            return true;
+         }
+         if (cause.getCause() == cause)
+         {
+            break;
+         }
+      }
+      return false;
+   }
+
+   private void rollbackQuietly(Session session, UserTransaction tx)
+   {
+      try
+      {
+         session.refresh(false);
+         if (tx.getStatus() != Status.STATUS_NO_TRANSACTION)
+         {
+            tx.rollback();
+         }
+      }
+      catch (Exception e)
+      {
+         log.warn("Rollback failed", e);
+      }
+   }
+
+   private Node addFile(Node parent, String name) throws Exception
+   {
+      Node file = parent.addNode(name, "nt:file");
+      Node content = file.addNode("jcr:content", "nt:resource");
+      content.setProperty("jcr:mimeType", "text/plain");
+      content.setProperty("jcr:lastModified", Calendar.getInstance());
+      content.setProperty("jcr:data", new ByteArrayInputStream(name.getBytes("UTF-8")));
+      return file;
+   }
+
+   private void updateFile(Node file, int iteration) throws Exception
+   {
+      Node content = file.getNode("jcr:content");
+      content.setProperty("jcr:lastModified", Calendar.getInstance());
+      content.setProperty("jcr:data", new ByteArrayInputStream(("update " + iteration).getBytes("UTF-8")));
+   }
+
+   private Node getTestNode(Session session) throws Exception
+   {
+      Node parentNode = (Node)session.getItem("/");
+      if (parentNode.hasNode("test"))
+      {
+         return parentNode.getNode("test");
+      }
+      Node testNode = parentNode.addNode("test", "nt:folder");
+      session.save();
+      return testNode;
    }
 
    private void executeTestQuery(Session session) throws Exception
@@ -223,4 +1066,105 @@ public class JCRTransactionTest implements Startable
    {
       //To change body of implemented methods use File | Settings | File Templates.
    }
+
+   private static class WriteStats
+   {
+      private final AtomicLong committed = new AtomicLong();
+      private final AtomicLong conflicts = new AtomicLong();
+      private final AtomicLong retries = new AtomicLong();
+      private final AtomicLong failures = new AtomicLong();
+      // Attempts, which failed with exception not caused by InvalidItemStateException
+      private final AtomicLong failedAttempts = new AtomicLong();
+      private final AtomicLong saveNanos = new AtomicLong();
+
+      private String toString(int workers, long elapsedNanos)
+      {
+         long commits = committed.get();
+         double seconds = elapsedNanos / 1000000000d;
+         double attempts = commits + conflicts.get() + failedAttempts.get();
+         return "workers=" + workers +
+               ", committed=" + commits +
+               ", failed=" + failures.get() +
+               ", conflicts(InvalidItemStateException)=" + conflicts.get() +
+               ", retries=" + retries.get() +
+               ", conflictRate=" + (attempts > 0 ? String.format("%.2f%%", conflicts.get() * 100 / attempts) : "n/a") +
+               ", throughput=" + String.format("%.1f tx/s", commits / seconds) +
+               ", avgSaveAndCommit=" + (commits > 0 ? String.format("%.2f ms", saveNanos.get() / 1000000d / commits) : "n/a") +
+               ", elapsed=" + String.format("%.2f s", seconds);
+      }
+   }
+
+   /**
+    * Discards all written data. Only counts bytes and computes their CRC32 checksum
+    */
+   private static class CountingOutputStream extends OutputStream
+   {
+      private final CRC32 crc = new CRC32();
+      private long count;
+
+      @Override
+      public void write(int b) throws IOException
+      {
+         crc.update(b);
+         count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         crc.update(b, off, len);
+         count += len;
+      }
+   }
+
+   /**
+    * Result of one query strategy. Heap is measured as growth of used heap (without GC) over the baseline taken after GC,
+    * sampled while the result is still referenced. Allocated bytes are measured for current thread and are -1 if JVM can't
+    * measure them.
+    */
+   private static class QueryMeasurement
+   {
+      private final int children;
+      private final long heapBefore;
+      private final long allocatedBefore;
+      private String strategy;
+      private long size = -1;
+      private long iterated;
+      private long executeNanos;
+      private long sizeNanos;
+      private long iterateNanos;
+      private long executeAllocated;
+      private long sizeAllocated;
+      private long iterateAllocated;
+      private long maxHeapGrowth;
+
+      private QueryMeasurement(String strategy, int children)
+      {
+         this.strategy = strategy;
+         this.children = children;
+         System.gc();
+         this.heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+         this.allocatedBefore = allocatedBytes();
+      }
+
+      private void sampleHeap()
+      {
+         maxHeapGrowth = Math.max(maxHeapGrowth, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() - heapBefore);
+      }
+
+      public String toString()
+      {
+         boolean allocationSupported = allocatedBefore >= 0;
+         return "children=" + children +
+               ", strategy=" + strategy +
+               ", getSize=" + size +
+               ", iterated=" + iterated +
+               ", execute=" + String.format("%.2f ms", executeNanos / 1000000d) +
+               ", getSizeTime=" + String.format("%.2f ms", sizeNanos / 1000000d) +
+               ", iterate=" + String.format("%.2f ms", iterateNanos / 1000000d) +
+               ", allocated(execute/getSize/iterate)=" + (allocationSupported ? formatBytes(executeAllocated) + "/" +
+               formatBytes(sizeAllocated) + "/" + formatBytes(iterateAllocated) : "n/a") +
+               ", maxHeapGrowth=" + formatBytes(maxHeapGrowth);
+      }
+   }
 }
@@ -0,0 +1,136 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live progress of running {@link Job}. Job records latency of each finished operation, so that throughput and
+ * percentiles can be read while the job is still running. Besides totals since start of job, metrics of the last
+ * finished window of {@link #WINDOW_SECONDS} are reported, so that recent regressions are not hidden in long runs.
+ * Synchronous operations use their own instance, which nobody reads.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class JobProgress
+{
+   private static final long WINDOW_SECONDS = 60;
+
+   private final long startNanos = System.nanoTime();
+   private final AtomicLong operations = new AtomicLong();
+   private final LatencyHistogram latencies = new LatencyHistogram();
+   private volatile Window currentWindow = new Window(startNanos);
+   private volatile Window lastWindow;
+   private volatile String status = "started";
+   private volatile boolean cancelled;
+
+   public void recordOperation(long latencyNanos)
+   {
+      operations.incrementAndGet();
+      latencies.record(latencyNanos);
+      getCurrentWindow(System.nanoTime()).latencies.record(latencyNanos);
+   }
+
+   public void setStatus(String status)
+   {
+      this.status = status;
+   }
+
+   public void cancel()
+   {
+      cancelled = true;
+   }
+
+   public boolean isCancelled()
+   {
+      return cancelled;
+   }
+
+   /**
+    * Should be called by job between operations.
+    *
+    * @throws CancellationException if job has been cancelled
+    */
+   public void checkCancelled()
+   {
+      if (cancelled || Thread.currentThread().isInterrupted())
+      {
+         throw new CancellationException("Job cancelled");
+      }
+   }
+
+   public String toString()
+   {
+      long now = System.nanoTime();
+      getCurrentWindow(now);
+      long ops = operations.get();
+      double seconds = (now - startNanos) / 1000000000d;
+      Window window = lastWindow;
+      return "status=" + status +
+            ", ops=" + ops +
+            ", elapsed=" + String.format("%.1f s", seconds) +
+            ", throughput=" + String.format("%.1f ops/s", seconds > 0 ? ops / seconds : 0) +
+            ", " + latencies +
+            (window != null ? "; last " + WINDOW_SECONDS + " s: " + window : "");
+   }
+
+   // Starts new window if current one is over
+   private Window getCurrentWindow(long now)
+   {
+      Window window = currentWindow;
+      if (now - window.startNanos < WINDOW_SECONDS * 1000000000L)
+      {
+         return window;
+      }
+      synchronized (this)
+      {
+         if (currentWindow == window)
+         {
+            window.endNanos = now;
+            lastWindow = window;
+            currentWindow = new Window(now);
+         }
+         return currentWindow;
+      }
+   }
+
+   private static class Window
+   {
+      private final long startNanos;
+      private final LatencyHistogram latencies = new LatencyHistogram();
+      private volatile long endNanos;
+
+      private Window(long startNanos)
+      {
+         this.startNanos = startNanos;
+      }
+
+      public String toString()
+      {
+         double seconds = (endNanos - startNanos) / 1000000000d;
+         return "throughput=" + String.format("%.1f ops/s", latencies.getCount() / seconds) + ", " + latencies;
+      }
+   }
+}
@@ -0,0 +1,349 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.management.annotations.Impact;
+import org.exoplatform.management.annotations.ImpactType;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.picocontainer.Startable;
+
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs long operations asynchronously on bounded executor, so that management caller doesn't need to wait for them.
+ * Each submitted job gets id, which can be used to read its progress and result or to cancel it.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+@Managed
+@ManagedDescription("JobService")
+@NameTemplate({
+      @Property(key = "name", value = "JobService"),
+      @Property(key = "service", value = "JobService")
+})
+public class JobService implements Startable
+{
+   private static final Logger log = LoggerFactory.getLogger(JobService.class);
+
+   // Number of jobs running in parallel. Jobs with the same name never run in parallel, as they work with the same data
+   private static final int MAX_RUNNING_JOBS = 2;
+
+   // Number of jobs waiting for execution. Next submit is rejected when queue is full
+   private static final int MAX_QUEUED_JOBS = 10;
+
+   private final AtomicInteger idGenerator = new AtomicInteger();
+   private final Map<Integer, JobEntry> jobs = new ConcurrentHashMap<Integer, JobEntry>();
+   private final ConcurrentHashMap<String, ReentrantLock> nameLocks = new ConcurrentHashMap<String, ReentrantLock>();
+   private ThreadPoolExecutor executor;
+
+   public int submit(final String name, final Job job)
+   {
+      // UserTransaction lookup needs naming context of management thread, so it's done before job is moved to executor thread
+      try
+      {
+         JTAHelper.getUserTransaction();
+      }
+      catch (Exception e)
+      {
+         log.warn("UserTransaction not available for job " + name, e);
+      }
+
+      // Job runs with the same container as management operation, which submitted it
+      final ExoContainer container = ExoContainerContext.getCurrentContainer();
+      final int id = idGenerator.incrementAndGet();
+      final JobEntry entry = new JobEntry(name);
+      try
+      {
+         entry.future = executor.submit(new Callable<String>()
+         {
+            public String call() throws Exception
+            {
+               entry.started = true;
+               ExoContainer previousContainer = ExoContainerContext.getCurrentContainerIfPresent();
+               ExoContainerContext.setCurrentContainer(container);
+               RequestLifeCycle.begin(container);
+               try
+               {
+                  ReentrantLock nameLock = lockName(name, entry.progress);
+                  try
+                  {
+                     entry.progress.checkCancelled();
+                     log.info("Job " + id + " (" + name + ") started");
+                     entry.progress.setStatus("running");
+                     String result = job.run(entry.progress);
+                     log.info("Job " + id + " (" + name + ") finished: " + result);
+                     return result;
+                  }
+                  finally
+                  {
+                     nameLock.unlock();
+                  }
+               }
+               catch (Exception e)
+               {
+                  log.warn("Job " + id + " (" + name + ") failed", e);
+                  throw e;
+               }
+               finally
+               {
+                  try
+                  {
+                     rollbackBoundTransaction(id);
+                     RequestLifeCycle.end();
+                  }
+                  finally
+                  {
+                     ExoContainerContext.setCurrentContainer(previousContainer);
+                     entry.exited = true;
+                  }
+               }
+            }
+         });
+         jobs.put(id, entry);
+      }
+      catch (RejectedExecutionException ree)
+      {
+         throw new IllegalStateException("Job " + name + " rejected. There are already " + MAX_QUEUED_JOBS + " jobs waiting for execution");
+      }
+      return id;
+   }
+
+   @Managed
+   @ManagedDescription("List of all jobs with their progress")
+   public String listJobs()
+   {
+      StringBuilder result = new StringBuilder();
+      for (Map.Entry<Integer, JobEntry> entry : jobs.entrySet())
+      {
+         result.append(entry.getKey()).append(": ").append(entry.getValue().name).append(", ")
+               .append(getState(entry.getValue())).append("\n");
+      }
+      return result.toString();
+   }
+
+   @Managed
+   @ManagedDescription("Progress and live metrics of job or its result if it's already finished")
+   public String getJob(@ManagedDescription("Job id") @ManagedName("id") int id)
+   {
+      JobEntry entry = jobs.get(id);
+      if (entry == null)
+      {
+         return "Job " + id + " not found";
+      }
+      if (!entry.hasExited() || entry.future.isCancelled())
+      {
+         return getState(entry);
+      }
+
+      try
+      {
+         return getState(entry) + "\n" + entry.future.get();
+      }
+      catch (ExecutionException e)
+      {
+         return getState(entry) + "\nFailed: " + e.getCause();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return getState(entry);
+      }
+   }
+
+   @Managed
+   @ManagedDescription("Cancel running or queued job. Running job stops once it notices cancellation")
+   @Impact(ImpactType.WRITE)
+   public boolean cancelJob(@ManagedDescription("Job id") @ManagedName("id") int id)
+   {
+      JobEntry entry = jobs.get(id);
+      if (entry == null)
+      {
+         return false;
+      }
+      entry.progress.cancel();
+
+      // Running job is not interrupted, as interrupt closes NIO channel, which JCR or JDBC may be just writing to.
+      // It stops once it checks its progress
+      boolean cancelled = entry.future.cancel(!entry.started);
+      log.info("Job " + id + " (" + entry.name + ") cancelled: " + cancelled);
+      return cancelled;
+   }
+
+   @Managed
+   @ManagedDescription("Remove jobs, which are not running anymore, from list of jobs")
+   @Impact(ImpactType.WRITE)
+   public void removeFinishedJobs()
+   {
+      for (Iterator<JobEntry> it = jobs.values().iterator(); it.hasNext();)
+      {
+         if (it.next().hasExited())
+         {
+            it.remove();
+         }
+      }
+   }
+
+   private String getState(JobEntry entry)
+   {
+      String state;
+      if (!entry.hasExited())
+      {
+         if (entry.progress.isCancelled())
+         {
+            state = "CANCELLING";
+         }
+         else
+         {
+            state = entry.started ? "RUNNING" : "QUEUED";
+         }
+      }
+      else if (entry.future.isCancelled())
+      {
+         state = "CANCELLED";
+      }
+      else
+      {
+         state = "DONE";
+      }
+      return state + ", " + entry.progress;
+   }
+
+   /**
+    * Wait until no other job with given name is running. Waiting job can still be cancelled
+    */
+   private ReentrantLock lockName(String name, JobProgress progress) throws InterruptedException
+   {
+      ReentrantLock nameLock = nameLocks.get(name);
+      if (nameLock == null)
+      {
+         ReentrantLock newLock = new ReentrantLock();
+         nameLock = nameLocks.putIfAbsent(name, newLock);
+         if (nameLock == null)
+         {
+            nameLock = newLock;
+         }
+      }
+
+      if (!nameLock.tryLock())
+      {
+         progress.setStatus("waiting for other job " + name + " to finish");
+         while (!nameLock.tryLock(1, TimeUnit.SECONDS))
+         {
+            progress.checkCancelled();
+         }
+      }
+      return nameLock;
+   }
+
+   // Transaction left by failed or cancelled job would otherwise be used by next job running on the same pooled thread
+   private void rollbackBoundTransaction(int id)
+   {
+      try
+      {
+         UserTransaction tx = JTAHelper.getUserTransaction();
+         if (tx.getStatus() != Status.STATUS_NO_TRANSACTION)
+         {
+            log.warn("Job " + id + " left UserTransaction in state " + tx.getStatus() + ". Going to rollback it");
+            tx.rollback();
+         }
+      }
+      catch (Exception e)
+      {
+         log.warn("Failed to rollback UserTransaction left by job " + id, e);
+      }
+   }
+
+   @Override
+   public void start()
+   {
+      final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      executor = new ThreadPoolExecutor(MAX_RUNNING_JOBS, MAX_RUNNING_JOBS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_JOBS), new ThreadFactory()
+      {
+         private final AtomicInteger threadCounter = new AtomicInteger();
+
+         public Thread newThread(Runnable r)
+         {
+            Thread thread = new Thread(r, "JobService-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            return thread;
+         }
+      });
+   }
+
+   @Override
+   public void stop()
+   {
+      executor.shutdownNow();
+   }
+
+   private static class JobEntry
+   {
+      private final String name;
+      private final JobProgress progress = new JobProgress();
+      private volatile Future<String> future;
+
+      // Set by executor thread once job starts and once it has really finished (even if it was cancelled before)
+      private volatile boolean started;
+      private volatile boolean exited;
+
+      private JobEntry(String name)
+      {
+         this.name = name;
+         progress.setStatus("queued");
+      }
+
+      /**
+       * @return true if job doesn't run and won't run anymore. Job cancelled while queued never starts
+       */
+      private boolean hasExited()
+      {
+         return exited || (!started && future.isCancelled());
+      }
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets. Each power of two is divided into half of {@link #SUB_BUCKETS}
+ * linear sub-buckets, so that percentiles are precise to about 12% while memory is constant. Safe for concurrent recording.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class LatencyHistogram
+{
+   private static final int SUB_BUCKET_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+   public void record(long nanos)
+   {
+      counts.incrementAndGet(bucketIndex(Math.max(0, nanos)));
+   }
+
+   /**
+    * @return number of recorded values
+    */
+   public long getCount()
+   {
+      long total = 0;
+      for (int i = 0; i < counts.length(); i++)
+      {
+         total += counts.get(i);
+      }
+      return total;
+   }
+
+   /**
+    * @param percentile value between 0 and 100
+    * @return upper bound of latency in nanoseconds for given percentile or -1 if nothing was recorded yet
+    */
+   public long getPercentile(double percentile)
+   {
+      long[] snapshot = new long[counts.length()];
+      long total = 0;
+      for (int i = 0; i < snapshot.length; i++)
+      {
+         snapshot[i] = counts.get(i);
+         total += snapshot[i];
+      }
+      if (total == 0)
+      {
+         return -1;
+      }
+
+      long rank = (long)Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++)
+      {
+         seen += snapshot[i];
+         if (seen >= Math.max(1, rank))
+         {
+            return bucketUpperBound(i);
+         }
+      }
+      return bucketUpperBound(snapshot.length - 1);
+   }
+
+   public String toString()
+   {
+      return "p50=" + formatNanos(getPercentile(50)) +
+            ", p90=" + formatNanos(getPercentile(90)) +
+            ", p99=" + formatNanos(getPercentile(99)) +
+            ", max=" + formatNanos(getPercentile(100));
+   }
+
+   private static int bucketIndex(long value)
+   {
+      if (value < SUB_BUCKETS)
+      {
+         return (int)value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+      int subBucket = (int)(value >>> exponent) - SUB_BUCKETS / 2;
+      return exponent * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + subBucket;
+   }
+
+   private static long bucketUpperBound(int index)
+   {
+      if (index < SUB_BUCKETS)
+      {
+         return index;
+      }
+      int exponent = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+      long subBucket = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+      return ((subBucket + 1) << exponent) - 1;
+   }
+
+   private static String formatNanos(long nanos)
+   {
+      return nanos < 0 ? "n/a" : String.format("%.3f ms", nanos / 1000000d);
+   }
+}
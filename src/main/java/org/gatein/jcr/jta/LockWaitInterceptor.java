@@ -0,0 +1,100 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import org.jboss.cache.InvocationContext;
+import org.jboss.cache.commands.VisitableCommand;
+import org.jboss.cache.commands.WriteCommand;
+import org.jboss.cache.interceptors.base.CommandInterceptor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long write commands wait for locks. One instance is placed right before the locking interceptor and
+ * remembers when the command entered it. Second instance is placed right after the locking interceptor, so the time
+ * between them is time spent acquiring the lock. Wait time is recorded for Fqn of the command.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class LockWaitInterceptor extends CommandInterceptor
+{
+   private final boolean beforeLock;
+   private final ThreadLocal<Long> lockStart;
+   private final HotKeySketch waitSketch;
+   private final AtomicBoolean enabled;
+
+   private LockWaitInterceptor(boolean beforeLock, ThreadLocal<Long> lockStart, HotKeySketch waitSketch, AtomicBoolean enabled)
+   {
+      this.beforeLock = beforeLock;
+      this.lockStart = lockStart;
+      this.waitSketch = waitSketch;
+      this.enabled = enabled;
+   }
+
+   /**
+    * @return pair of interceptors. First must be placed before locking interceptor and second after it
+    */
+   public static LockWaitInterceptor[] createPair(HotKeySketch waitSketch, AtomicBoolean enabled)
+   {
+      ThreadLocal<Long> lockStart = new ThreadLocal<Long>();
+      return new LockWaitInterceptor[] { new LockWaitInterceptor(true, lockStart, waitSketch, enabled),
+            new LockWaitInterceptor(false, lockStart, waitSketch, enabled) };
+   }
+
+   @Override
+   public Object handleDefault(InvocationContext ctx, VisitableCommand command) throws Throwable
+   {
+      if (!enabled.get() || !(command instanceof WriteCommand))
+      {
+         return invokeNextInterceptor(ctx, command);
+      }
+
+      if (beforeLock)
+      {
+         lockStart.set(System.nanoTime());
+         try
+         {
+            return invokeNextInterceptor(ctx, command);
+         }
+         finally
+         {
+            // Command didn't get behind locking interceptor (for example lock timeout), so whole time was spent waiting
+            recordWait((WriteCommand)command);
+         }
+      }
+
+      recordWait((WriteCommand)command);
+      return invokeNextInterceptor(ctx, command);
+   }
+
+   private void recordWait(WriteCommand command)
+   {
+      Long start = lockStart.get();
+      if (start != null)
+      {
+         lockStart.remove();
+         waitSketch.add(String.valueOf(command.getFqn()), System.nanoTime() - start);
+      }
+   }
+}
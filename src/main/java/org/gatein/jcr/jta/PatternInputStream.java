@@ -0,0 +1,110 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * InputStream of given length, which generates its content on the fly, so that even gigabytes of data can be streamed
+ * without holding them in memory. Content repeats with period of {@link #PERIOD} bytes and is copied from precomputed
+ * block, so that generating it costs about the same as copying memory.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class PatternInputStream extends InputStream
+{
+   private static final int PERIOD = 251;
+
+   // Block contains whole number of periods, so content at any position can be copied from offset position % PERIOD
+   private static final byte[] BLOCK = new byte[PERIOD * 256];
+
+   static
+   {
+      for (int i = 0; i < BLOCK.length; i++)
+      {
+         BLOCK[i] = (byte)(i % PERIOD);
+      }
+   }
+
+   private final long length;
+   private long position;
+
+   public PatternInputStream(long length)
+   {
+      this.length = length;
+   }
+
+   @Override
+   public int read()
+   {
+      if (position >= length)
+      {
+         return -1;
+      }
+      return BLOCK[(int)(position++ % PERIOD)] & 0xFF;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len)
+   {
+      if (position >= length)
+      {
+         return -1;
+      }
+      int count = (int)Math.min(len, length - position);
+      int copied = 0;
+      while (copied < count)
+      {
+         int blockOffset = (int)((position + copied) % PERIOD);
+         int chunk = Math.min(count - copied, BLOCK.length - blockOffset);
+         System.arraycopy(BLOCK, blockOffset, b, off + copied, chunk);
+         copied += chunk;
+      }
+      position += count;
+      return count;
+   }
+
+   @Override
+   public int available()
+   {
+      return (int)Math.min(Integer.MAX_VALUE, length - position);
+   }
+
+   /**
+    * @return CRC32 checksum of content of stream with given length
+    */
+   public static long checksum(long length)
+   {
+      CRC32 crc = new CRC32();
+      PatternInputStream in = new PatternInputStream(length);
+      byte[] buffer = new byte[BLOCK.length];
+      int read;
+      while ((read = in.read(buffer, 0, buffer.length)) != -1)
+      {
+         crc.update(buffer, 0, read);
+      }
+      return crc.getValue();
+   }
+}
@@ -0,0 +1,114 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.jcr.jta;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Periodically samples used heap and size of spool directory on background timer thread, so that sampling doesn't
+ * slow down measured operation. Remembers maximum of both values between {@link #start()} and {@link #stop()}.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ResourceSampler
+{
+   private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+   private final File spoolDir;
+   private final long intervalMillis;
+   private Timer timer;
+   private volatile long maxHeapUsed;
+   private volatile long maxSpoolBytes;
+
+   public ResourceSampler(File spoolDir, long intervalMillis)
+   {
+      this.spoolDir = spoolDir;
+      this.intervalMillis = intervalMillis;
+   }
+
+   public void start()
+   {
+      maxHeapUsed = 0;
+      maxSpoolBytes = 0;
+      timer = new Timer("ResourceSampler", true);
+      timer.schedule(new TimerTask()
+      {
+         public void run()
+         {
+            sample();
+         }
+      }, 0, intervalMillis);
+   }
+
+   /**
+    * Stop sampling. Does nothing if sampler is not running
+    */
+   public void stop()
+   {
+      if (timer != null)
+      {
+         timer.cancel();
+         timer = null;
+         // Last sample, because content may be spooled only after the stream was fully consumed
+         sample();
+      }
+   }
+
+   public long getMaxHeapUsed()
+   {
+      return maxHeapUsed;
+   }
+
+   public long getMaxSpoolBytes()
+   {
+      return maxSpoolBytes;
+   }
+
+   private synchronized void sample()
+   {
+      maxHeapUsed = Math.max(maxHeapUsed, memoryBean.getHeapMemoryUsage().getUsed());
+      maxSpoolBytes = Math.max(maxSpoolBytes, directorySize(spoolDir));
+   }
+
+   public static long directorySize(File dir)
+   {
+      long size = 0;
+      File[] files = dir != null ? dir.listFiles() : null;
+      if (files != null)
+      {
+         for (File file : files)
+         {
+            if (file.isFile())
+            {
+               size += file.length();
+            }
+         }
+      }
+      return size;
+   }
+}
@@ -23,28 +23,104 @@
 
 package org.gatein.jcr.jta;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Very simple object, which holds some state
+ * Very simple object, which holds some state. Optionally it can carry binary payload and chain of nested objects, so
+ * that it can be used to simulate cached values of different size and depth.
  *
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  */
-public class SimpleObject
+public class SimpleObject implements Externalizable
 {
    private int size = -1;
    private List<Object> fullResults = new ArrayList<Object>();
+   private byte[] payload = new byte[0];
+   private SimpleObject child;
+
+   public SimpleObject()
+   {
+   }
+
+   /**
+    * @param payloadSize size of binary payload of this object and of each nested object
+    * @param depth number of nested objects
+    */
+   public SimpleObject(int payloadSize, int depth)
+   {
+      payload = new byte[payloadSize];
+      for (int i = 0; i < payloadSize; i++)
+      {
+         payload[i] = (byte)i;
+      }
+      if (depth > 0)
+      {
+         child = new SimpleObject(payloadSize, depth - 1);
+      }
+   }
 
    public void changeState()
    {
       size = size + 2;
 
       fullResults = new ArrayList<Object>();
-      fullResults.add(new Object());
+      // Must be serializable, so that object can be stored in cache in serialized form
+      fullResults.add(System.nanoTime());
       fullResults.add("Some String: " + size);
    }
 
+   public int getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return deep copy of this object
+    */
+   public SimpleObject copy()
+   {
+      SimpleObject copy = new SimpleObject();
+      copy.size = size;
+      copy.fullResults = new ArrayList<Object>(fullResults);
+      copy.payload = payload.clone();
+      copy.child = child != null ? child.copy() : null;
+      return copy;
+   }
+
+   @Override
+   public void writeExternal(ObjectOutput out) throws IOException
+   {
+      out.writeInt(size);
+      out.writeInt(fullResults.size());
+      for (Object result : fullResults)
+      {
+         out.writeObject(result);
+      }
+      out.writeInt(payload.length);
+      out.write(payload);
+      out.writeObject(child);
+   }
+
+   @Override
+   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+   {
+      size = in.readInt();
+      int resultsCount = in.readInt();
+      fullResults = new ArrayList<Object>(resultsCount);
+      for (int i = 0; i < resultsCount; i++)
+      {
+         fullResults.add(in.readObject());
+      }
+      payload = new byte[in.readInt()];
+      in.readFully(payload);
+      child = (SimpleObject)in.readObject();
+   }
+
    @Override
    public String toString()
    {